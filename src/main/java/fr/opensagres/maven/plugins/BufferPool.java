@@ -0,0 +1,84 @@
+package fr.opensagres.maven.plugins;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A pool of I/O buffers shared by the uploads, so that sending files and
+ * reading responses does not allocate a new buffer each time. All buffers
+ * have the same fixed size of {@link #BUFFER_SIZE} bytes.
+ */
+final class BufferPool {
+
+	/**
+	 * Size of the pooled buffers in bytes. It is a fixed chunk size and does
+	 * not depend on the socket buffers of the connections.
+	 */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final BufferPool SHARED = new BufferPool(BUFFER_SIZE, 8);
+
+	private final int bufferSize;
+
+	private final byte[][] free;
+
+	private int count;
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param bufferSize
+	 *            the size of the buffers in bytes.
+	 * @param capacity
+	 *            the maximal number of idle buffers kept in the pool.
+	 */
+	BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.free = new byte[capacity][];
+	}
+
+	/**
+	 * Returns the pool shared by all uploads.
+	 *
+	 * @return the shared pool.
+	 */
+	static BufferPool shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates one if the pool is empty.
+	 * The buffer must be given back with {@link #release(byte[])}.
+	 *
+	 * @return a buffer of the size of the pool.
+	 */
+	synchronized byte[] acquire() {
+		if (count == 0)
+			return new byte[bufferSize];
+		byte[] buffer = free[--count];
+		free[count] = null;
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. It is dropped if the pool is full.
+	 *
+	 * @param buffer
+	 *            a buffer taken from this pool.
+	 */
+	synchronized void release(byte[] buffer) {
+		if (buffer.length == bufferSize && count < free.length)
+			free[count++] = buffer;
+	}
+}
@@ -0,0 +1,260 @@
+package fr.opensagres.maven.plugins;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An output stream copying what is written to it to several sinks
+ * concurrently. Each sink is written by its own thread from a bounded queue
+ * of chunks, so a slow sink only holds back the others once its queue is
+ * full. A sink failing is dropped without affecting the others; its failure
+ * is available from {@link #getFailure(int)} once the stream is closed.
+ * Chunks are recycled once all sinks are done with them, and
+ * {@link #writeFrom(InputStream)} reads straight into them.
+ */
+class FanOutStream extends OutputStream {
+
+	private static final Chunk END = new Chunk(null);
+
+	private final BufferPool pool;
+
+	private final Sink[] sinks;
+
+	private final BlockingQueue<Chunk> free;
+
+	private Chunk current;
+
+	private boolean closed;
+
+	/**
+	 * Creates a new stream and starts writing to the sinks.
+	 *
+	 * @param outs
+	 *            the sinks to copy the written bytes to.
+	 * @param names
+	 *            the names of the sinks, used to name their threads.
+	 * @param queueSize
+	 *            the number of chunks a sink may lag behind before writing
+	 *            blocks.
+	 * @param pool
+	 *            the pool the chunks are taken from.
+	 */
+	FanOutStream(List<OutputStream> outs, List<String> names, int queueSize,
+			BufferPool pool) {
+		this.pool = pool;
+		// chunks in use are queued for, or written by, the slowest sink, plus the one being filled
+		this.free = new ArrayBlockingQueue<Chunk>(queueSize + 2);
+		this.sinks = new Sink[outs.size()];
+		for (int i = 0; i < sinks.length; i++) {
+			sinks[i] = new Sink(outs.get(i), queueSize);
+			Thread thread = new Thread(sinks[i], "gcupload-" + names.get(i));
+			thread.setDaemon(true);
+			sinks[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		while (len > 0) {
+			if (current == null)
+				current = acquire();
+			int count = Math.min(len, current.data.length - current.length);
+			System.arraycopy(b, off, current.data, current.length, count);
+			current.length += count;
+			off += count;
+			len -= count;
+			if (current.length == current.data.length)
+				dispatch();
+		}
+	}
+
+	/**
+	 * Writes everything the given stream provides, reading it directly into
+	 * the chunks handed over to the sinks.
+	 *
+	 * @param in
+	 *            the stream to read from.
+	 * @return the number of bytes written.
+	 * @throws IOException
+	 *             if reading fails or all sinks failed.
+	 */
+	long writeFrom(InputStream in) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		long total = 0;
+		while (true) {
+			if (current == null)
+				current = acquire();
+			int count = in.read(current.data, current.length,
+					current.data.length - current.length);
+			if (count < 0)
+				return total;
+			current.length += count;
+			total += count;
+			if (current.length == current.data.length)
+				dispatch();
+		}
+	}
+
+	/**
+	 * Hands the pending bytes over to the sinks.
+	 */
+	public void flush() throws IOException {
+		if (current != null)
+			dispatch();
+	}
+
+	/**
+	 * Sends the remaining bytes, then waits for all sinks to be written and
+	 * closed.
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		flush();
+		closed = true;
+		try {
+			for (Sink sink : sinks) {
+				sink.queue.put(END);
+			}
+			for (Sink sink : sinks) {
+				sink.thread.join();
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while closing");
+		}
+		Chunk chunk;
+		while ((chunk = free.poll()) != null) {
+			pool.release(chunk.data);
+		}
+	}
+
+	/**
+	 * Returns why the given sink failed.
+	 *
+	 * @param index
+	 *            the index of the sink.
+	 * @return the failure of the sink, or null if it was written entirely.
+	 */
+	IOException getFailure(int index) {
+		return sinks[index].failure;
+	}
+
+	private void dispatch() throws IOException {
+		Chunk chunk = current;
+		current = null;
+		chunk.references.set(sinks.length);
+		try {
+			for (Sink sink : sinks) {
+				sink.queue.put(chunk);
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while writing");
+		}
+		boolean alive = false;
+		for (Sink sink : sinks) {
+			alive |= sink.failure == null;
+		}
+		if (!alive)
+			throw new IOException("All destinations failed", sinks[0].failure);
+	}
+
+	private Chunk acquire() {
+		Chunk chunk = free.poll();
+		if (chunk == null)
+			return new Chunk(pool.acquire());
+		chunk.length = 0;
+		return chunk;
+	}
+
+	private void release(Chunk chunk) {
+		if (chunk.references.decrementAndGet() == 0 && !free.offer(chunk))
+			pool.release(chunk.data);
+	}
+
+	/**
+	 * Bytes shared by all sinks, recycled once every sink is done with them.
+	 */
+	private static class Chunk {
+
+		final byte[] data;
+
+		int length;
+
+		final AtomicInteger references = new AtomicInteger();
+
+		Chunk(byte[] data) {
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Writes the chunks of its queue to one output stream.
+	 */
+	private class Sink implements Runnable {
+
+		final OutputStream out;
+
+		final BlockingQueue<Chunk> queue;
+
+		Thread thread;
+
+		volatile IOException failure;
+
+		Sink(OutputStream out, int queueSize) {
+			this.out = out;
+			this.queue = new ArrayBlockingQueue<Chunk>(queueSize);
+		}
+
+		public void run() {
+			try {
+				Chunk chunk;
+				while ((chunk = queue.take()) != END) {
+					try {
+						if (failure == null)
+							out.write(chunk.data, 0, chunk.length);
+					} catch (IOException e) {
+						// keep draining the queue so the writer never waits on this sink
+						failure = e;
+					} finally {
+						release(chunk);
+					}
+				}
+				if (failure == null) {
+					out.flush();
+					out.close();
+				}
+			} catch (IOException e) {
+				failure = e;
+			} catch (InterruptedException e) {
+				failure = new InterruptedIOException("Interrupted while writing");
+			}
+		}
+	}
+}
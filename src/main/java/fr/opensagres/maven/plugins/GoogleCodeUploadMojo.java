@@ -16,14 +16,14 @@ package fr.opensagres.maven.plugins;
  * limitations under the License.
  */
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
@@ -32,6 +32,7 @@ import java.util.Map;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.settings.Server;
 import org.apache.maven.settings.Settings;
 
 /**
@@ -67,25 +68,36 @@ public class GoogleCodeUploadMojo extends AbstractMojo {
     private String serverId;
 
     /**
-     * The googlecode username
+     * Google Code project name to upload to.
+     *
+     * @parameter 
      */
-    private String userName;
+    private String projectName;
 
     /**
-     * The googlecode password
+     * Upload destinations. Each file is read once and sent to all destinations concurrently. Each destination element
+     * may have the following subelements: <ul>
+     * <li>serverId: the server id of the credentials in settings.xml (by default {@link #serverId})
+     * <li>projectName: the Google Code project name to upload to (by default {@link #projectName})
+     * <li>url: the URL to upload to (by default the Google Code upload URL of the project)
+     * </ul>
+     * If no destination is defined, files are uploaded to {@link #projectName} with the credentials of
+     * {@link #serverId}.
+     *
+     * @parameter
      */
-    private String password;
-
-
-  
-
+    private Map[] destinations;
 
     /**
-     * Google Code project name to upload to.
+     * Size in bytes of the data a destination may lag behind the fastest one before it holds back the others.
      *
-     * @parameter 
+     * @parameter default-value="4194304"
      */
-    private String projectName;
+    private int fanOutBufferSize;
+
+    private List<UploadDestination> uploadDestinations;
+
+    private BufferPool chunkPool;
 
 
     /**
@@ -117,6 +129,63 @@ public class GoogleCodeUploadMojo extends AbstractMojo {
      */
     private boolean allowSnapshots;
 
+    /**
+     * Timeout in milliseconds for connecting to the upload server. 0 means no timeout.
+     *
+     * @parameter default-value="30000"
+     */
+    private int connectTimeout;
+
+    /**
+     * Timeout in milliseconds for each read of the server response. 0 means no timeout.
+     *
+     * @parameter default-value="120000"
+     */
+    private int readTimeout;
+
+    /**
+     * Base time in milliseconds a single file upload may take, from the start of the request body to the response.
+     * The deadline of an upload is this base time plus the time needed to send the file at
+     * {@link #uploadTimeoutRate}. 0 means no deadline. Time spent waiting for the file content, for example while a
+     * slower destination catches up, does not count. Connecting is bounded by {@link #connectTimeout} and
+     * {@link #readTimeout} instead.
+     *
+     * @parameter default-value="120000"
+     */
+    private long uploadTimeout;
+
+    /**
+     * Rate in bytes per second the upload deadline is scaled with according to the file size. 0 means the deadline
+     * does not depend on the file size.
+     *
+     * @parameter default-value="16384"
+     */
+    private long uploadTimeoutRate;
+
+    /**
+     * Minimal throughput in bytes per second while sending a file. An upload sending less than that over the last
+     * {@link #throughputWindow} spent writing is considered stalled and aborted. Time spent waiting for the file
+     * content, for example while a slower destination catches up, does not count. 0 means no throughput floor.
+     *
+     * @parameter default-value="1024"
+     */
+    private long minThroughput;
+
+    /**
+     * Time in milliseconds over which the throughput of an upload is measured.
+     *
+     * @parameter default-value="30000"
+     */
+    private long throughputWindow;
+
+    /**
+     * Should the goal go on when an upload has been aborted because it stalled. By default a stalled upload fails the
+     * build.
+     *
+     * @parameter expression="false"
+     */
+    private boolean ignoreStalledUploads;
+
     /**
      * Checks whether the given upload descriptor is well defined and executable.
      *
@@ -147,9 +216,9 @@ public class GoogleCodeUploadMojo extends AbstractMojo {
                 "allowSnapshots property to true.");
         }
 
-        userName = settings.getServer(serverId).getUsername();
-        password = settings.getServer(serverId).getPassword();
-
+        uploadDestinations = generateUploadDestinations();
+        int queueSize = Math.max(1, fanOutBufferSize / BufferPool.BUFFER_SIZE);
+        chunkPool = new BufferPool(BufferPool.BUFFER_SIZE, queueSize + uploadDestinations.size() + 1);
 
         List<UploadDescriptor> uploadDescriptors = generateUploadDescriptors();
 
@@ -161,9 +230,13 @@ public class GoogleCodeUploadMojo extends AbstractMojo {
                 	throw new MojoExecutionException("artifact does not exists "+project +" and classifier="+descriptor.getClassifier()  );
                     try {
                         upload(file,  descriptor.getSummary(),
-                            descriptor.getLabels());
+                            descriptor.getLabels(), queueSize);
+                    } catch (UploadAbortedException e) {
+                        getLog().error("Upload " + descriptor.getId() + " stalled: " + e.getMessage());
+                        if (!ignoreStalledUploads) {
+                            throw new MojoExecutionException(e.getMessage(), e);
+                        }
                     } catch (IOException e) {
-                    	
                         getLog().info("Problem when processing upload " + descriptor.getId(), e);
                     }
             }
@@ -190,19 +263,24 @@ public class GoogleCodeUploadMojo extends AbstractMojo {
         	
         
           if (uploads.length == 0) {
+            UploadEvents.DescriptorResolution event = new UploadEvents.DescriptorResolution();
+            event.begin();
             UploadDescriptor descriptor = new UploadDescriptor(project);
             getLog().info("Loading descriptor " + descriptor.getId());
             validate(descriptor);
             uploadDescriptors.add(descriptor);
             getLog().debug(" Descriptor " + descriptor.getId() + " = " + descriptor);
+            commit(event, descriptor);
         } else {
             for (Map properties : uploads) {
-            	
+                UploadEvents.DescriptorResolution event = new UploadEvents.DescriptorResolution();
+                event.begin();
                 UploadDescriptor descriptor = new UploadDescriptor(project, properties);
                 getLog().info("Loading descriptor " + descriptor.getId());
                 validate(descriptor);
                 uploadDescriptors.add(descriptor);
                 getLog().debug(" Descriptor " + descriptor.getId() + " = " + descriptor);
+                commit(event, descriptor);
             }
         }
         }
@@ -210,106 +288,217 @@ public class GoogleCodeUploadMojo extends AbstractMojo {
     }
 
     /**
-     * Uploads the contents of the file  to the project's Google Code upload url. Performs the basic http authentication
-     * required by Google Code.
+     * Extract the list of upload destinations from the configuration of the plugin, with their credentials.
      *
-     * @param file           the file to upload
-     * @param targetFileName the filename it should have on googlecode
-     * @param summary        the file summary
-     * @param labelArray     the labels to attach to the file
-     * @throws IOException if IO goes wrong.
+     * @return the list of upload destinations defined in the configuration of the plugin or the default destination
+     *         if no destination has been defined.
+     * @throws MojoExecutionException if the credentials of a destination are missing from settings.xml
+     */
+    private List<UploadDestination> generateUploadDestinations() throws MojoExecutionException {
+        List<UploadDestination> result = new ArrayList<UploadDestination>();
+        if (destinations == null || destinations.length == 0) {
+            result.add(new UploadDestination(serverId, getProjectName()));
+        } else {
+            for (Map properties : destinations) {
+                result.add(new UploadDestination(serverId, getProjectName(), properties));
+            }
+        }
+        for (UploadDestination destination : result) {
+            Server server = settings.getServer(destination.getServerId());
+            if (server == null) {
+                throw new MojoExecutionException("No server " + destination.getServerId() + " in settings.xml for "
+                    + destination);
+            }
+            destination.setCredentials(server.getUsername(), server.getPassword());
+            getLog().debug(" Destination " + destination);
+        }
+        return result;
+    }
+
+    /**
+     * Fills in and commits the flight recorder event of a resolved descriptor.
+     *
+     * @param event      the event begun before the descriptor was resolved.
+     * @param descriptor the resolved descriptor.
+     */
+    private static void commit(UploadEvents.DescriptorResolution event, UploadDescriptor descriptor) {
+        event.end();
+        if (event.shouldCommit()) {
+            File file = descriptor.getFile();
+            event.descriptorId = descriptor.getId();
+            event.fileName = file.getName();
+            event.fileSize = file.length();
+            event.commit();
+        }
+    }
+
+    /**
+     * Uploads the contents of the file to all upload destinations. The file is read once and its content is sent to
+     * the destinations concurrently. Performs the basic http authentication required by Google Code.
+     *
+     * @param file       the file to upload
+     * @param summary    the file summary
+     * @param labelArray the labels to attach to the file
+     * @param queueSize  the number of chunks a destination may lag behind the others
+     * @throws IOException if the upload failed for at least one destination.
      */
     private void upload(File file, 
-                        String summary, String[] labelArray) throws IOException {
+                        String summary, String[] labelArray, int queueSize) throws IOException {
         System.clearProperty("javax.net.ssl.trustStoreProvider"); // fixes open-jdk-issue
         System.clearProperty("javax.net.ssl.trustStoreType");
 
-        final String BOUNDARY = "CowMooCowMooCowCowCow";
-        URL url = createUploadURL();
-
-        getLog().info("The upload URL is " + url);
-
-        InputStream in = new BufferedInputStream(new FileInputStream(file));
-        if(in.available()>0){
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-       
-    
-        conn.addRequestProperty("User-Agent", "Mozilla/4.76");
-        conn.setRequestProperty("Cookie", "foo=bar"); 
-        conn.setDoOutput(true);
-        conn.setRequestProperty("Authorization", "Basic " + createAuthToken(userName, password));
-        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
-        conn.setRequestProperty("User-Agent", "Google Code Upload Maven Plugin 1.0");
-        
-        getLog().info("Attempting to connect (username is " + userName + ")...");
-        conn.connect();
-
-        getLog().info("Sending request parameters...");
-        OutputStream out = conn.getOutputStream();
-        sendLine(out, "--" + BOUNDARY);
-        sendLine(out, "content-disposition: form-data; name=\"summary\"");
-        sendLine(out, "");
-        sendLine(out, summary);
-
+        if(file.length()>0){
         if (labelArray.length > 0) {
+            getLog().info("Setting " + labelArray.length + " label(s)");
+        }
+        MultipartBody body = new MultipartBody(file, summary, labelArray);
+        long total = body.getContentLength();
+
+        List<String> failures = new ArrayList<String>();
+        boolean aborted = false;
+        List<DestinationUpload> destinationUploads = new ArrayList<DestinationUpload>();
+        try {
+            for (UploadDestination destination : uploadDestinations) {
+                destinationUploads.add(new DestinationUpload(file, destination, total));
+            }
+            // all destinations are connected before sending, so none waits for the others to connect
+            connectAll(destinationUploads);
+
+            List<DestinationUpload> targets = new ArrayList<DestinationUpload>();
+            List<OutputStream> outs = new ArrayList<OutputStream>();
+            List<String> names = new ArrayList<String>();
+            for (DestinationUpload destinationUpload : destinationUploads) {
+                if (destinationUpload.failure != null) {
+                    aborted |= failed(file, destinationUpload.url, destinationUpload.watchdog,
+                        destinationUpload.failure, failures);
+                } else {
+                    destinationUpload.watchdog.start(destinationUpload.conn);
+                    targets.add(destinationUpload);
+                    outs.add(destinationUpload.body);
+                    names.add(destinationUpload.url.toString());
+                }
+            }
 
-            if (labelArray.length > 0) {
-                getLog().info("Setting " + labelArray.length + " label(s)");
+            if (!targets.isEmpty()) {
+                getLog().info("Sending file... " + file.getName());
+                for (DestinationUpload destinationUpload : targets) {
+                    destinationUpload.writeEvent.begin();
+                }
+                FanOutStream out = new FanOutStream(outs, names, queueSize, chunkPool);
+                IOException writeFailure = null;
+                try {
+                    body.writeTo(out);
+                } catch (IOException e) {
+                    writeFailure = e;
+                } finally {
+                    out.close();
+                }
 
-                for (int n = 0, i = labelArray.length; n < i; n++) {
-                    sendLine(out, "--" + BOUNDARY);
-                    sendLine(out, "content-disposition: form-data; name=\"label\"");
-                    sendLine(out, "");
-                    sendLine(out, labelArray[n].trim());
+                for (int i = 0; i < targets.size(); i++) {
+                    IOException failure = out.getFailure(i);
+                    if (failure == null) {
+                        failure = writeFailure;
+                    }
+                    if (failure != null) {
+                        aborted |= failed(file, targets.get(i).url, targets.get(i).watchdog, failure, failures);
+                    }
                 }
             }
+        } finally {
+            for (DestinationUpload destinationUpload : destinationUploads) {
+                destinationUpload.close();
+            }
         }
+        if (aborted) {
+            throw new UploadAbortedException("Upload of " + file.getName() + " failed: " + failures);
+        }
+        if (!failures.isEmpty()) {
+            throw new IOException("Upload of " + file.getName() + " failed: " + failures);
+        }
+        }
+    }
 
-        getLog().info("Sending file... " + file.getName());
-        sendLine(out, "--" + BOUNDARY);
-        sendLine(out, "content-disposition: form-data; name=\"filename\"; filename=\"" + file.getName() + "\"");
-        sendLine(out, "Content-Type: application/octet-stream");
-        sendLine(out, "");
-        int count;
-        byte[] buf = new byte[8192];
-        while ((count = in.read(buf)) >= 0) {
-            out.write(buf, 0, count);
+    /**
+     * Connects to all the given destinations concurrently and waits for the connections to be made or to fail.
+     *
+     * @param destinationUploads the uploads to connect
+     * @throws InterruptedIOException if interrupted while waiting.
+     */
+    private static void connectAll(List<DestinationUpload> destinationUploads) throws InterruptedIOException {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (DestinationUpload destinationUpload : destinationUploads) {
+            Thread thread = new Thread(destinationUpload, "gcupload-connect-" + destinationUpload.url);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
         }
-        in.close();
-        sendLine(out, "");
-        sendLine(out, "--" + BOUNDARY + "--");
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while connecting");
+        }
+    }
 
-        out.flush();
-        out.close();
+    /**
+     * Reads the response of the server once the file has been sent to it.
+     *
+     * @param file the uploaded file
+     * @param url  the upload URL
+     * @param conn the connection the file has been sent through
+     * @throws IOException if IO goes wrong.
+     */
+    private void readResponse(File file, URL url, HttpURLConnection conn) throws IOException {
+        UploadEvents.ResponseWait responseEvent = new UploadEvents.ResponseWait();
+        responseEvent.begin();
 
-        // For whatever reason, you have to read from the input stream before
-        // the url connection will start sending
-        in = conn.getInputStream();
+        InputStream in = conn.getInputStream();
 
-        getLog().info("Upload finished. Reading response.");
+        getLog().info("Upload to " + url + " finished. Reading response.");
 
         getLog().info("HTTP Response Headers: " + conn.getHeaderFields());
-        StringBuilder responseBody = new StringBuilder();
-        while ((count = in.read(buf)) >= 0) {
-            responseBody.append(new String(buf, 0, count, "ascii"));
-        }
-        getLog().info(responseBody.toString());
-        in.close();
-
-        conn.disconnect();
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        BufferPool pool = BufferPool.shared();
+        byte[] buf = pool.acquire();
+        int count;
+        try {
+            while ((count = in.read(buf)) >= 0) {
+                responseBody.write(buf, 0, count);
+            }
+        } finally {
+            in.close();
+            pool.release(buf);
         }
+        responseEvent.fileName = file.getName();
+        responseEvent.url = url.toString();
+        responseEvent.responseCode = conn.getResponseCode();
+        responseEvent.responseBytes = responseBody.size();
+        responseEvent.commit();
+        getLog().info(responseBody.toString("ascii"));
     }
 
     /**
-     * Just sends an ASCII version of the given string, followed by a CRLF line terminator, to the given output stream.
+     * Reports the failed upload of a file to a destination.
      *
-     * @param out    the output stream to write the ASCII string to
-     * @param string the string to write as ASCII code.
-     * @throws IOException if IO goes wrong.
+     * @param file     the file which failed to upload
+     * @param url      the upload URL of the destination
+     * @param watchdog the watchdog of the upload
+     * @param e        the failure
+     * @param failures the failures of the file, to add this one to
+     * @return whether the upload has been aborted by its watchdog
      */
-    private void sendLine(OutputStream out, String string) throws IOException {
-        out.write(string.getBytes("ascii"));
-        out.write("\r\n".getBytes("ascii"));
+    private boolean failed(File file, URL url, UploadWatchdog watchdog, IOException e, List<String> failures) {
+        String message = watchdog.getStallReason() != null
+            ? "aborted: " + watchdog.getStallReason() : String.valueOf(e.getMessage());
+        UploadEvents.UploadFailed failed = new UploadEvents.UploadFailed();
+        failed.fileName = file.getName();
+        failed.url = url.toString();
+        failed.message = message;
+        failed.commit();
+        getLog().error("Upload of " + file.getName() + " to " + url + " " + message, e);
+        failures.add(url + " (" + message + ")");
+        return watchdog.getStallReason() != null;
     }
 
     /**
@@ -325,22 +514,106 @@ public class GoogleCodeUploadMojo extends AbstractMojo {
     }
 
     /**
-     * Creates the correct URL for uploading to the named google code project.
-     * The correct URL will be generated based on the {@link #projectName}.  
+     * Returns the Google Code project name to upload to by default.
      * If projectName is not set, It will be guessed based on the last part of the groupId
-     * @return the upload URL.
-     * @throws java.net.MalformedURLException if URL is malformed.
+     * @return the project name.
      */
-    private URL createUploadURL() throws MalformedURLException {
+    private String getProjectName() {
     	
-    	 if (projectName == null) {
+    	 if (projectName == null && project.getGroupId() != null) {
              //trying to guess based on the last part of the groupId
     		 String groupId=project.getGroupId();
     		 int pos=groupId.lastIndexOf(".");
     		 projectName=groupId.substring(pos+1, groupId.length());
     		 
          }
-         return new URL("https", projectName + ".googlecode.com", "/files");
+         return projectName;
  
     }
+
+    /**
+     * The upload of a file to one destination. Running it connects to the destination; once its request body stream
+     * is closed, the body write is recorded and the response of the destination is read.
+     */
+    private class DestinationUpload implements Runnable {
+
+        private final File file;
+
+        private final UploadDestination destination;
+
+        final URL url;
+
+        final HttpURLConnection conn;
+
+        final UploadWatchdog watchdog;
+
+        final UploadEvents.BodyWrite writeEvent = new UploadEvents.BodyWrite();
+
+        OutputStream body;
+
+        IOException failure;
+
+        DestinationUpload(File file, UploadDestination destination, long contentLength) throws IOException {
+            this.file = file;
+            this.destination = destination;
+            url = destination.getUploadURL();
+            getLog().info("The upload URL is " + url);
+
+            conn = (HttpURLConnection) url.openConnection();
+            conn.addRequestProperty("User-Agent", "Mozilla/4.76");
+            conn.setRequestProperty("Cookie", "foo=bar"); 
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Authorization", "Basic "
+                + createAuthToken(destination.getUserName(), destination.getPassword()));
+            conn.setRequestProperty("Content-Type", MultipartBody.CONTENT_TYPE);
+            conn.setRequestProperty("User-Agent", "Google Code Upload Maven Plugin 1.0");
+            conn.setConnectTimeout(connectTimeout);
+            conn.setReadTimeout(readTimeout);
+            // streaming makes the body go out while it is written, so the watchdog sees the real progress
+            conn.setFixedLengthStreamingMode(contentLength);
+
+            watchdog = new UploadWatchdog(UploadWatchdog.deadline(uploadTimeout, uploadTimeoutRate, file.length()),
+                minThroughput, throughputWindow);
+        }
+
+        public void run() {
+            try {
+                getLog().info("Attempting to connect to " + url + " (username is "
+                    + destination.getUserName() + ")...");
+                UploadEvents.Connect connectEvent = new UploadEvents.Connect();
+                connectEvent.begin();
+                conn.connect();
+                connectEvent.url = url.toString();
+                connectEvent.commit();
+                body = new FilterOutputStream(watchdog.watch(conn.getOutputStream())) {
+                    private long written;
+
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        written += len;
+                    }
+
+                    public void close() throws IOException {
+                        super.close();
+                        writeEvent.fileName = file.getName();
+                        writeEvent.url = url.toString();
+                        writeEvent.fileBytes = file.length();
+                        writeEvent.totalBytes = written;
+                        writeEvent.commit();
+                        readResponse(file, url, conn);
+                    }
+                };
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Stops watching the upload and releases its connection.
+         */
+        void close() {
+            watchdog.stop();
+            conn.disconnect();
+        }
+    }
 }
@@ -0,0 +1,150 @@
+package fr.opensagres.maven.plugins;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * The multipart/form-data request body of a file upload. The parts before the
+ * file content are encoded once when the body is created, so writing the body
+ * only copies the file through a pooled buffer, or straight into the chunks
+ * of a {@link FanOutStream}.
+ */
+class MultipartBody {
+
+	private static final String BOUNDARY = "CowMooCowMooCowCowCow";
+
+	/**
+	 * Content type of the request, boundary included.
+	 */
+	static final String CONTENT_TYPE = "multipart/form-data; boundary="
+			+ BOUNDARY;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private static final byte[] CRLF = ascii("\r\n");
+
+	private static final byte[] BOUNDARY_LINE = ascii("--" + BOUNDARY + "\r\n");
+
+	private static final byte[] SUMMARY_HEADER = ascii("content-disposition: form-data; name=\"summary\"\r\n\r\n");
+
+	private static final byte[] LABEL_HEADER = ascii("content-disposition: form-data; name=\"label\"\r\n\r\n");
+
+	private static final byte[] FILE_CONTENT_TYPE = ascii("Content-Type: application/octet-stream\r\n\r\n");
+
+	private static final byte[] TAIL = ascii("\r\n--" + BOUNDARY + "--\r\n");
+
+	private final File file;
+
+	private final byte[] head;
+
+	/**
+	 * Creates the request body uploading the given file.
+	 *
+	 * @param file
+	 *            the file to upload.
+	 * @param summary
+	 *            the file summary.
+	 * @param labels
+	 *            the labels to attach to the file.
+	 */
+	MultipartBody(File file, String summary, String[] labels) {
+		this.file = file;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		out.write(BOUNDARY_LINE, 0, BOUNDARY_LINE.length);
+		out.write(SUMMARY_HEADER, 0, SUMMARY_HEADER.length);
+		line(out, summary);
+		for (String label : labels) {
+			out.write(BOUNDARY_LINE, 0, BOUNDARY_LINE.length);
+			out.write(LABEL_HEADER, 0, LABEL_HEADER.length);
+			line(out, label.trim());
+		}
+		out.write(BOUNDARY_LINE, 0, BOUNDARY_LINE.length);
+		line(out, "content-disposition: form-data; name=\"filename\"; filename=\""
+				+ file.getName() + "\"");
+		out.write(FILE_CONTENT_TYPE, 0, FILE_CONTENT_TYPE.length);
+		this.head = out.toByteArray();
+	}
+
+	/**
+	 * Returns the length of the body in bytes.
+	 *
+	 * @return the length of the body, file content included.
+	 */
+	long getContentLength() {
+		return head.length + file.length() + TAIL.length;
+	}
+
+	/**
+	 * Writes the body to the given stream.
+	 *
+	 * @param out
+	 *            the request body stream.
+	 * @return the number of bytes of file content written.
+	 * @throws IOException
+	 *             if IO goes wrong.
+	 */
+	long writeTo(OutputStream out) throws IOException {
+		out.write(head);
+		long fileBytes = 0;
+		InputStream in = new FileInputStream(file);
+		try {
+			if (out instanceof FanOutStream) {
+				fileBytes = ((FanOutStream) out).writeFrom(in);
+			} else {
+				BufferPool pool = BufferPool.shared();
+				byte[] buffer = pool.acquire();
+				try {
+					int count;
+					while ((count = in.read(buffer)) >= 0) {
+						out.write(buffer, 0, count);
+						fileBytes += count;
+					}
+				} finally {
+					pool.release(buffer);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		out.write(TAIL);
+		return fileBytes;
+	}
+
+	/**
+	 * Appends the ASCII version of the given string followed by a CRLF line
+	 * terminator.
+	 *
+	 * @param out
+	 *            the stream to append to.
+	 * @param string
+	 *            the string to append.
+	 */
+	private static void line(ByteArrayOutputStream out, String string) {
+		byte[] bytes = ascii(string);
+		out.write(bytes, 0, bytes.length);
+		out.write(CRLF, 0, CRLF.length);
+	}
+
+	private static byte[] ascii(String string) {
+		return string.getBytes(ASCII);
+	}
+}
@@ -0,0 +1,153 @@
+package fr.opensagres.maven.plugins;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An UploadDestination describes a server the files of the gcupload goal are
+ * uploaded to. Properties which are not set default to the ones of the goal.
+ */
+public class UploadDestination {
+
+	private String serverId;
+
+	private String projectName;
+
+	private String url;
+
+	private String userName;
+
+	private String password;
+
+	private static final String SERVER_ID = "serverId";
+	private static final String PROJECT_NAME = "projectName";
+	private static final String URL = "url";
+	private static final Set<String> allowedProperties = new HashSet<String>(
+			Arrays.asList(SERVER_ID, PROJECT_NAME, URL));
+
+	/**
+	 * Creates a new upload destination.
+	 *
+	 * @param serverId
+	 *            the server id of the credentials in settings.xml.
+	 * @param projectName
+	 *            the Google Code project name to upload to.
+	 */
+	public UploadDestination(String serverId, String projectName) {
+		this.serverId = serverId;
+		this.projectName = projectName;
+	}
+
+	/**
+	 * Creates a new upload destination using the given property map, falling
+	 * back to the given defaults for missing properties.
+	 *
+	 * @param serverId
+	 *            the default server id.
+	 * @param projectName
+	 *            the default project name.
+	 * @param properties
+	 *            a map with properties for the destination.
+	 */
+	public UploadDestination(String serverId, String projectName,
+			Map properties) {
+		this(serverId, projectName);
+
+		@SuppressWarnings({ "unchecked" })
+		HashSet<String> propertyKeys = new HashSet<String>(properties.keySet());
+
+		propertyKeys.removeAll(allowedProperties);
+		if (!propertyKeys.isEmpty())
+			throw new IllegalArgumentException(
+					"The following property keys are not allowed in "
+							+ "constructing an upload destination: "
+							+ propertyKeys);
+
+		if (properties.containsKey(SERVER_ID)) {
+			this.serverId = (String) properties.get(SERVER_ID);
+		}
+		if (properties.containsKey(PROJECT_NAME)) {
+			this.projectName = (String) properties.get(PROJECT_NAME);
+		}
+		if (properties.containsKey(URL)) {
+			this.url = (String) properties.get(URL);
+		}
+	}
+
+	/**
+	 * Returns the server id of the credentials to upload with.
+	 *
+	 * @return the server id in settings.xml.
+	 */
+	public String getServerId() {
+		return serverId;
+	}
+
+	/**
+	 * Returns the Google Code project name to upload to.
+	 *
+	 * @return the project name.
+	 */
+	public String getProjectName() {
+		return projectName;
+	}
+
+	/**
+	 * Sets the credentials to upload with.
+	 *
+	 * @param userName
+	 *            the googlecode username.
+	 * @param password
+	 *            the googlecode password.
+	 */
+	public void setCredentials(String userName, String password) {
+		this.userName = userName;
+		this.password = password;
+	}
+
+	/**
+	 * Returns the googlecode username.
+	 *
+	 * @return the username to upload with.
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Returns the googlecode password.
+	 *
+	 * @return the password to upload with.
+	 */
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * Returns the URL to upload to. Unless an URL has been specified, this is
+	 * the Google Code upload URL of the project.
+	 *
+	 * @return the upload URL.
+	 * @throws MalformedURLException
+	 *             if the URL is malformed.
+	 */
+	public URL getUploadURL() throws MalformedURLException {
+		if (url != null)
+			return new URL(url);
+		return new URL("https", projectName + ".googlecode.com", "/files");
+	}
+
+	/**
+	 * Returns a string representation of this upload destination.
+	 *
+	 * @return a string representation of this upload destination.
+	 */
+	public String toString() {
+		return "UploadDestination{serverId='" + serverId + "', projectName='"
+				+ projectName + "', url='" + url + "'}";
+	}
+}
@@ -0,0 +1,139 @@
+package fr.opensagres.maven.plugins;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events emitted by the gcupload goal. They are only
+ * recorded when the build JVM runs with a flight recording enabled (for example
+ * <code>MAVEN_OPTS=-XX:StartFlightRecording</code>) and cost next to nothing
+ * otherwise.
+ */
+final class UploadEvents {
+
+	private static final String CATEGORY = "Google Code Upload";
+
+	private UploadEvents() {
+	}
+
+	/**
+	 * Resolution and validation of one upload descriptor.
+	 */
+	@Name("fr.opensagres.gcupload.DescriptorResolution")
+	@Label("Descriptor Resolution")
+	@Category({ "Maven", CATEGORY })
+	@StackTrace(false)
+	static class DescriptorResolution extends Event {
+
+		@Label("Descriptor")
+		String descriptorId;
+
+		@Label("File")
+		String fileName;
+
+		@Label("File Size")
+		@DataAmount
+		long fileSize;
+	}
+
+	/**
+	 * Opening of the HTTP connection to the upload URL.
+	 */
+	@Name("fr.opensagres.gcupload.Connect")
+	@Label("Connect")
+	@Category({ "Maven", CATEGORY })
+	@StackTrace(false)
+	static class Connect extends Event {
+
+		@Label("URL")
+		String url;
+	}
+
+	/**
+	 * Writing of the multipart request body to one destination, file content
+	 * included, up to the wait for the response.
+	 */
+	@Name("fr.opensagres.gcupload.BodyWrite")
+	@Label("Body Write")
+	@Category({ "Maven", CATEGORY })
+	@StackTrace(false)
+	static class BodyWrite extends Event {
+
+		@Label("File")
+		String fileName;
+
+		@Label("URL")
+		String url;
+
+		@Label("File Bytes")
+		@DataAmount
+		long fileBytes;
+
+		@Label("Total Bytes")
+		@Description("File content plus multipart headers")
+		@DataAmount
+		long totalBytes;
+	}
+
+	/**
+	 * Waiting for and reading the server response once the body is sent.
+	 */
+	@Name("fr.opensagres.gcupload.ResponseWait")
+	@Label("Response Wait")
+	@Category({ "Maven", CATEGORY })
+	@StackTrace(false)
+	static class ResponseWait extends Event {
+
+		@Label("File")
+		String fileName;
+
+		@Label("URL")
+		String url;
+
+		@Label("Response Code")
+		int responseCode;
+
+		@Label("Response Bytes")
+		@DataAmount
+		long responseBytes;
+	}
+
+	/**
+	 * A failed upload of a file to one destination. The goal does not retry on
+	 * its own, so this marks the point where a re-run of the goal would have
+	 * to pick up.
+	 */
+	@Name("fr.opensagres.gcupload.UploadFailed")
+	@Label("Upload Failed")
+	@Category({ "Maven", CATEGORY })
+	static class UploadFailed extends Event {
+
+		@Label("File")
+		String fileName;
+
+		@Label("URL")
+		String url;
+
+		@Label("Message")
+		String message;
+	}
+}
@@ -0,0 +1,316 @@
+package fr.opensagres.maven.plugins;
+
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Watches a single upload and aborts it when it stalls. An upload is stalled
+ * when it runs past its deadline, or when less than the minimal throughput has
+ * been written while sending the request body. The time spent waiting between
+ * two writes of the request body does not count towards the deadline, and the
+ * throughput is measured over the time spent in writes only, so an upload
+ * waiting for the next bytes to send is not considered stalled. Aborting disconnects the HTTP connection,
+ * which makes the blocked write or read fail with an {@link IOException}.
+ */
+class UploadWatchdog {
+
+	/**
+	 * Interval between two checks of the running uploads, in milliseconds.
+	 */
+	static final long CHECK_INTERVAL = 1000;
+
+	private static final Timer TIMER = new Timer("gcupload-watchdog", true);
+
+	private final long deadline;
+
+	private final long minThroughput;
+
+	private final long window;
+
+	private final LinkedList<long[]> samples = new LinkedList<long[]>();
+
+	private long start;
+
+	private long written;
+
+	private long busy;
+
+	private boolean writing;
+
+	private long writeStart;
+
+	private long idle;
+
+	private long idleSince = -1;
+
+	private volatile boolean sendingBody;
+
+	private volatile boolean bodySent;
+
+	private volatile String stallReason;
+
+	private HttpURLConnection connection;
+
+	private TimerTask task;
+
+	/**
+	 * Creates a new watchdog.
+	 *
+	 * @param deadline
+	 *            the time the whole upload may take in milliseconds, waits
+	 *            between writes excluded, or 0 for no deadline.
+	 * @param minThroughput
+	 *            the minimal throughput in bytes per second while sending the
+	 *            request body, or 0 for no throughput floor.
+	 * @param window
+	 *            the time over which the throughput is measured, in
+	 *            milliseconds.
+	 */
+	UploadWatchdog(long deadline, long minThroughput, long window) {
+		this.deadline = deadline;
+		this.minThroughput = minThroughput;
+		this.window = window;
+	}
+
+	/**
+	 * Computes the deadline of an upload: the base time plus the time needed
+	 * to send the file at the given rate.
+	 *
+	 * @param base
+	 *            the base time in milliseconds, or 0 for no deadline.
+	 * @param rate
+	 *            the rate in bytes per second the deadline is scaled with, or
+	 *            0 to not scale it.
+	 * @param size
+	 *            the size of the file to upload in bytes.
+	 * @return the deadline in milliseconds, or 0 for no deadline.
+	 */
+	static long deadline(long base, long rate, long size) {
+		if (base <= 0)
+			return 0;
+		return rate > 0 ? base + size * 1000 / rate : base;
+	}
+
+	/**
+	 * Starts watching the upload performed through the given connection,
+	 * checking it periodically until {@link #stop()} is called.
+	 *
+	 * @param connection
+	 *            the connection to disconnect when the upload stalls.
+	 */
+	synchronized void start(HttpURLConnection connection) {
+		start(connection, System.currentTimeMillis());
+		if (deadline <= 0 && minThroughput <= 0)
+			return;
+		task = new TimerTask() {
+			public void run() {
+				// the timer is shared by all uploads, and an exception would
+				// cancel it for good
+				try {
+					if (check(System.currentTimeMillis()) != null)
+						abort();
+				} catch (RuntimeException e) {
+					cancel();
+				}
+			}
+		};
+		TIMER.schedule(task, CHECK_INTERVAL, CHECK_INTERVAL);
+	}
+
+	/**
+	 * Starts the upload at the given time without checking it periodically.
+	 *
+	 * @param connection
+	 *            the connection to disconnect when the upload stalls.
+	 * @param now
+	 *            the current time in milliseconds.
+	 */
+	synchronized void start(HttpURLConnection connection, long now) {
+		this.connection = connection;
+		start = now;
+	}
+
+	/**
+	 * Wraps the request body stream so the written bytes are accounted for
+	 * and a write fails as soon as the upload is found stalled. The
+	 * throughput floor applies from the first write until the stream is
+	 * closed.
+	 *
+	 * @param out
+	 *            the request body stream.
+	 * @return the watched stream.
+	 */
+	OutputStream watch(OutputStream out) {
+		return new FilterOutputStream(out) {
+			public void write(int b) throws IOException {
+				beginWrite();
+				try {
+					out.write(b);
+				} finally {
+					endWrite(1);
+				}
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				beginWrite();
+				try {
+					out.write(b, off, len);
+				} finally {
+					endWrite(len);
+				}
+			}
+
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					bodySent();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Signals that the request body has been sent. From now on only the
+	 * deadline applies, the read timeout of the connection covers the wait
+	 * for the response.
+	 */
+	synchronized void bodySent() {
+		bodySent = true;
+		sendingBody = false;
+		endIdle();
+	}
+
+	/**
+	 * Returns the current time. Only meant to be overridden by tests.
+	 *
+	 * @return the current time in milliseconds.
+	 */
+	long clock() {
+		return System.currentTimeMillis();
+	}
+
+	private void beginWrite() throws IOException {
+		failIfStalled();
+		synchronized (this) {
+			if (!bodySent)
+				sendingBody = true;
+			writing = true;
+			writeStart = clock();
+			endIdle();
+		}
+	}
+
+	private synchronized void endWrite(int len) {
+		writing = false;
+		long now = clock();
+		busy += now - writeStart;
+		written += len;
+		if (!bodySent)
+			idleSince = now;
+	}
+
+	private void endIdle() {
+		if (idleSince >= 0) {
+			idle += clock() - idleSince;
+			idleSince = -1;
+		}
+	}
+
+	/**
+	 * Stops watching the upload.
+	 */
+	synchronized void stop() {
+		if (task != null)
+			task.cancel();
+	}
+
+	/**
+	 * Returns why the upload was aborted.
+	 *
+	 * @return the reason the upload was aborted, or null if it was not.
+	 */
+	String getStallReason() {
+		return stallReason;
+	}
+
+	/**
+	 * Throws an exception describing the stall if the upload has been
+	 * aborted.
+	 *
+	 * @throws IOException
+	 *             if the upload has been aborted.
+	 */
+	void failIfStalled() throws IOException {
+		String reason = stallReason;
+		if (reason != null)
+			throw new IOException("Upload aborted: " + reason);
+	}
+
+	/**
+	 * Checks the upload at the given time.
+	 *
+	 * @param now
+	 *            the current time in milliseconds.
+	 * @return the reason the upload is stalled, or null if it is not.
+	 */
+	synchronized String check(long now) {
+		if (stallReason != null)
+			return stallReason;
+		long elapsed = now - start - idle;
+		if (idleSince >= 0)
+			elapsed -= now - idleSince;
+		if (deadline > 0 && elapsed > deadline) {
+			stallReason = "deadline of " + deadline + " ms exceeded after "
+					+ written + " bytes";
+		} else if (minThroughput > 0 && sendingBody) {
+			long bytes = written;
+			long time = writing ? busy + now - writeStart : busy;
+			if (samples.isEmpty() || samples.getLast()[0] != time)
+				samples.addLast(new long[] { time, bytes });
+			// keep the newest sample that is at least a window old
+			while (samples.size() > 1
+					&& time - samples.get(1)[0] >= window)
+				samples.removeFirst();
+			long[] oldest = samples.peekFirst();
+			long span = time - oldest[0];
+			if (span >= window
+					&& (bytes - oldest[1]) * 1000 < minThroughput * span) {
+				stallReason = "less than " + minThroughput
+						+ " bytes/s sent over the last " + window
+						+ " ms spent writing";
+			}
+		} else {
+			samples.clear();
+		}
+		return stallReason;
+	}
+
+	/**
+	 * Aborts the upload by disconnecting its connection.
+	 */
+	private synchronized void abort() {
+		stop();
+		if (connection != null)
+			connection.disconnect();
+	}
+}
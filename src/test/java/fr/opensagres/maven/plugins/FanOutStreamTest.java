@@ -0,0 +1,168 @@
+package fr.opensagres.maven.plugins;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the copy of an upload to several destinations.
+ */
+public class FanOutStreamTest extends TestCase {
+
+	private static final List<String> NAMES = Arrays.asList("first", "second");
+
+	private final BufferPool pool = new BufferPool(1024, 4);
+
+	public void testCopiesToAllSinks() throws Exception {
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		FanOutStream out = new FanOutStream(Arrays.<OutputStream> asList(first, second), NAMES, 2, pool);
+		byte[] data = data(10000);
+		out.write(data, 0, 3000);
+		out.write(data[3000]);
+		out.write(data, 3001, data.length - 3001);
+		out.close();
+
+		assertNull(out.getFailure(0));
+		assertNull(out.getFailure(1));
+		assertTrue(Arrays.equals(data, first.toByteArray()));
+		assertTrue(Arrays.equals(data, second.toByteArray()));
+	}
+
+	public void testWriteFromStream() throws Exception {
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		FanOutStream out = new FanOutStream(Arrays.<OutputStream> asList(first, second), NAMES, 2, pool);
+		byte[] data = data(10000);
+		out.write(data, 0, 100);
+		assertEquals(9800, out.writeFrom(new ByteArrayInputStream(data, 100, 9800)));
+		out.write(data, 9900, 100);
+		out.close();
+
+		assertTrue(Arrays.equals(data, first.toByteArray()));
+		assertTrue(Arrays.equals(data, second.toByteArray()));
+	}
+
+	public void testSlowSinkHoldsBackOnlyOnceItsQueueIsFull() throws Exception {
+		final CountDownLatch unblock = new CountDownLatch(1);
+		final ByteArrayOutputStream fast = new ByteArrayOutputStream();
+		final ByteArrayOutputStream slow = new ByteArrayOutputStream();
+		OutputStream blocking = new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					unblock.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				slow.write(b, off, len);
+			}
+		};
+		final FanOutStream out = new FanOutStream(Arrays.<OutputStream> asList(fast, blocking), NAMES, 3, pool);
+		final byte[] data = data(20 * 1024);
+		final IOException[] failure = new IOException[1];
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					out.writeFrom(new ByteArrayInputStream(data));
+					out.close();
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		};
+		writer.start();
+
+		// the slow sink writes one chunk and has three queued, the writer is
+		// blocked handing over a fifth one, which the fast sink already got
+		long end = System.currentTimeMillis() + 5000;
+		while (fast.size() < 5 * 1024 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(200);
+		assertEquals(5 * 1024, fast.size());
+		assertTrue(writer.isAlive());
+
+		unblock.countDown();
+		writer.join(TimeUnit.SECONDS.toMillis(5));
+		assertFalse(writer.isAlive());
+		assertNull(failure[0]);
+		assertNull(out.getFailure(0));
+		assertNull(out.getFailure(1));
+		assertTrue(Arrays.equals(data, fast.toByteArray()));
+		assertTrue(Arrays.equals(data, slow.toByteArray()));
+	}
+
+	public void testFailingSinkIsDropped() throws Exception {
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		OutputStream second = new OutputStream() {
+			public void write(int b) throws IOException {
+				throw new IOException("broken");
+			}
+		};
+		FanOutStream out = new FanOutStream(Arrays.asList(first, second), NAMES, 2, pool);
+		byte[] data = data(10000);
+		out.write(data, 0, data.length);
+		out.close();
+
+		assertNull(out.getFailure(0));
+		assertEquals("broken", out.getFailure(1).getMessage());
+		assertTrue(Arrays.equals(data, first.toByteArray()));
+	}
+
+	public void testAllSinksFailing() throws Exception {
+		OutputStream broken = new OutputStream() {
+			public void write(int b) throws IOException {
+				throw new IOException("broken");
+			}
+		};
+		FanOutStream out = new FanOutStream(Arrays.asList(broken, broken), NAMES, 1, pool);
+		try {
+			byte[] data = data(1024);
+			for (int i = 0; i < 100; i++) {
+				out.write(data, 0, data.length);
+			}
+			fail("write with no sink left");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+}
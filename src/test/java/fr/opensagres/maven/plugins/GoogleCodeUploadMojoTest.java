@@ -19,10 +19,31 @@ package fr.opensagres.maven.plugins;
  * under the License.
  */
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
 import org.apache.maven.plugin.testing.AbstractMojoTestCase;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 /**
  * Test google-code:upload.
  * 
@@ -55,4 +76,283 @@ public class GoogleCodeUploadMojoTest extends AbstractMojoTestCase {
 		mojo.execute();
 		
 	}
+
+	public void testUploadDestinations() throws Exception {
+		File testFile = getTestFile("target/test-classes/destinations.xml");
+		GoogleCodeUploadMojo mojo = (GoogleCodeUploadMojo) lookupMojo("gcupload", testFile);
+
+		assertNotNull(mojo);
+		mojo.execute();
+
+		List<UploadDestination> destinations = (List<UploadDestination>) getVariableValueFromObject(mojo,
+				"uploadDestinations");
+		assertEquals(2, destinations.size());
+		UploadDestination project = destinations.get(0);
+		assertEquals("code.google.com", project.getServerId());
+		assertEquals("my-project", project.getProjectName());
+		assertEquals("my_login", project.getUserName());
+		assertEquals("my_password", project.getPassword());
+		assertEquals("https://my-project.googlecode.com/files", project.getUploadURL().toString());
+		UploadDestination mirror = destinations.get(1);
+		assertEquals("mirror", mirror.getServerId());
+		assertEquals("my-project", mirror.getProjectName());
+		assertEquals("mirror_login", mirror.getUserName());
+		assertEquals("mirror_password", mirror.getPassword());
+		assertEquals("https://mirror.example.org/files", mirror.getUploadURL().toString());
+	}
+
+	public void testStalledUploadFailsTheBuild() throws Exception {
+		createUploadFile(64 * 1024);
+		Endpoint endpoint = new Endpoint(0, 2000);
+		try {
+			GoogleCodeUploadMojo mojo = lookupHttpMojo(endpoint);
+			setVariableValueToObject(mojo, "uploadTimeout", Long.valueOf(500));
+			try {
+				mojo.execute();
+				fail("stalled upload did not fail the build");
+			} catch (MojoExecutionException e) {
+				assertTrue(e.getMessage(), e.getMessage().indexOf("deadline") >= 0);
+				assertTrue(e.getMessage(), e.getMessage().indexOf(endpoint.getUrl()) >= 0);
+			}
+		} finally {
+			endpoint.stop();
+		}
+	}
+
+	public void testSlowMirrorDoesNotFailFastDestination() throws Exception {
+		File file = createUploadFile(1536 * 1024);
+		Endpoint fast = new Endpoint(0, 0);
+		Endpoint slow = new Endpoint(768 * 1024, 0);
+		try {
+			GoogleCodeUploadMojo mojo = lookupHttpMojo(slow, fast);
+			// the fast destination waits for the slow one most of the time
+			setVariableValueToObject(mojo, "fanOutBufferSize", Integer.valueOf(BufferPool.BUFFER_SIZE));
+			setVariableValueToObject(mojo, "minThroughput", Long.valueOf(64 * 1024));
+			setVariableValueToObject(mojo, "throughputWindow", Long.valueOf(1000));
+			FailureLog log = new FailureLog();
+			mojo.setLog(log);
+			mojo.execute();
+
+			assertEquals(0, log.failures);
+			long length = new MultipartBody(file, "", new String[] { "Type-Source", "Featured" }).getContentLength();
+			assertEquals(length, fast.body.size());
+			assertTrue(Arrays.equals(fast.body.toByteArray(), slow.body.toByteArray()));
+			assertEquals(2, log.responses);
+		} finally {
+			fast.stop();
+			slow.stop();
+		}
+	}
+
+	public void testSlowMirrorDoesNotMakeFastDestinationMissItsDeadline() throws Exception {
+		File file = createUploadFile(8 * 1024 * 1024);
+		Endpoint fast = new Endpoint(0, 0);
+		Endpoint slow = new Endpoint(1024 * 1024, 0);
+		try {
+			GoogleCodeUploadMojo mojo = lookupHttpMojo(slow, fast);
+			setVariableValueToObject(mojo, "fanOutBufferSize", Integer.valueOf(BufferPool.BUFFER_SIZE));
+			setVariableValueToObject(mojo, "uploadTimeout", Long.valueOf(2000));
+			FailureLog log = new FailureLog();
+			mojo.setLog(log);
+			try {
+				mojo.execute();
+				fail("stalled mirror did not fail the build");
+			} catch (MojoExecutionException e) {
+				assertTrue(e.getMessage(), e.getMessage().indexOf(slow.getUrl()) >= 0);
+				assertTrue(e.getMessage(), e.getMessage().indexOf(fast.getUrl()) < 0);
+			}
+
+			long length = new MultipartBody(file, "", new String[] { "Type-Source", "Featured" }).getContentLength();
+			assertEquals(length, fast.body.size());
+			assertEquals(1, log.responses);
+		} finally {
+			fast.stop();
+			slow.stop();
+		}
+	}
+
+	public void testUploadEvents() throws Exception {
+		File file = createUploadFile(256 * 1024);
+		Endpoint endpoint = new Endpoint(0, 1000);
+		Endpoint unreachable = new Endpoint(0, 0);
+		unreachable.stop();
+		File dump = getTestFile("target/upload-events.jfr");
+		Recording recording = new Recording();
+		try {
+			for (String name : new String[] { "DescriptorResolution", "Connect", "BodyWrite", "ResponseWait",
+					"UploadFailed" }) {
+				recording.enable("fr.opensagres.gcupload." + name);
+			}
+			recording.start();
+			lookupHttpMojo(endpoint, unreachable).execute();
+			recording.stop();
+			recording.dump(dump.toPath());
+		} finally {
+			recording.close();
+			endpoint.stop();
+		}
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump.toPath());
+		long length = new MultipartBody(file, "", new String[] { "Type-Source", "Featured" }).getContentLength();
+
+		RecordedEvent resolution = event(events, "DescriptorResolution");
+		assertEquals("upload-test.bin", resolution.getString("fileName"));
+		assertEquals(file.length(), resolution.getLong("fileSize"));
+
+		assertEquals(endpoint.getUrl(), event(events, "Connect").getString("url"));
+
+		RecordedEvent write = event(events, "BodyWrite");
+		assertEquals(endpoint.getUrl(), write.getString("url"));
+		assertEquals(file.length(), write.getLong("fileBytes"));
+		assertEquals(length, write.getLong("totalBytes"));
+
+		RecordedEvent response = event(events, "ResponseWait");
+		assertEquals(endpoint.getUrl(), response.getString("url"));
+		assertEquals(201, response.getInt("responseCode"));
+		assertEquals(2, response.getLong("responseBytes"));
+
+		// the server takes a second to respond, which is part of the response wait only
+		assertTrue(write.getDuration().toString(), write.getDuration().toMillis() < 900);
+		assertTrue(response.getDuration().toString(), response.getDuration().toMillis() >= 900);
+		assertFalse(write.getEndTime().isAfter(response.getStartTime()));
+
+		RecordedEvent failed = event(events, "UploadFailed");
+		assertEquals(unreachable.getUrl(), failed.getString("url"));
+		assertNotNull(failed.getString("message"));
+	}
+
+	/**
+	 * Returns the only recorded event of the given gcupload type.
+	 */
+	private static RecordedEvent event(List<RecordedEvent> events, String name) {
+		List<RecordedEvent> result = new ArrayList<RecordedEvent>();
+		for (RecordedEvent event : events) {
+			if (event.getEventType().getName().equals("fr.opensagres.gcupload." + name))
+				result.add(event);
+		}
+		assertEquals(name, 1, result.size());
+		return result.get(0);
+	}
+
+	private GoogleCodeUploadMojo lookupHttpMojo(Endpoint... endpoints) throws Exception {
+		File testFile = getTestFile("target/test-classes/http.xml");
+		GoogleCodeUploadMojo mojo = (GoogleCodeUploadMojo) lookupMojo("gcupload", testFile);
+		Map[] destinations = new Map[endpoints.length];
+		for (int i = 0; i < endpoints.length; i++) {
+			Map<String, String> destination = new HashMap<String, String>();
+			destination.put("url", endpoints[i].getUrl());
+			destinations[i] = destination;
+		}
+		setVariableValueToObject(mojo, "destinations", destinations);
+		return mojo;
+	}
+
+	private static File createUploadFile(int size) throws IOException {
+		File file = getTestFile("target/upload-test.bin");
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) i;
+		}
+		OutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+		return file;
+	}
+
+	private static void sleep(long millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A log counting the failed uploads and the responses read.
+	 */
+	private static class FailureLog extends SystemStreamLog {
+
+		int failures;
+
+		int responses;
+
+		public synchronized void info(CharSequence content) {
+			if ("ok".equals(content.toString()))
+				responses++;
+			super.info(content);
+		}
+
+		public synchronized void info(CharSequence content, Throwable error) {
+			failures++;
+			super.info(content, error);
+		}
+
+		public synchronized void error(CharSequence content) {
+			failures++;
+			super.error(content);
+		}
+
+		public synchronized void error(CharSequence content, Throwable error) {
+			failures++;
+			super.error(content, error);
+		}
+	}
+
+	/**
+	 * A local upload URL recording the request body it receives. It can be
+	 * made slow to read the body and to respond.
+	 */
+	private static class Endpoint implements HttpHandler {
+
+		private final HttpServer server;
+
+		private final long rate;
+
+		private final long responseDelay;
+
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		/**
+		 * @param rate the bytes per second the body is read at, or 0 to read it at full speed
+		 * @param responseDelay the time in milliseconds to wait before responding
+		 */
+		Endpoint(long rate, long responseDelay) throws IOException {
+			this.rate = rate;
+			this.responseDelay = responseDelay;
+			server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+			server.createContext("/files", this);
+			server.start();
+		}
+
+		String getUrl() {
+			return "http://localhost:" + server.getAddress().getPort() + "/files";
+		}
+
+		void stop() {
+			server.stop(0);
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			InputStream in = exchange.getRequestBody();
+			byte[] buffer = new byte[16 * 1024];
+			int count;
+			long start = System.currentTimeMillis();
+			long total = 0;
+			while ((count = in.read(buffer)) >= 0) {
+				synchronized (body) {
+					body.write(buffer, 0, count);
+				}
+				total += count;
+				if (rate > 0) {
+					sleep(start + total * 1000 / rate - System.currentTimeMillis());
+				}
+			}
+			sleep(responseDelay);
+			byte[] response = "ok".getBytes("ascii");
+			exchange.sendResponseHeaders(201, response.length);
+			exchange.getResponseBody().write(response);
+			exchange.close();
+		}
+	}
 }
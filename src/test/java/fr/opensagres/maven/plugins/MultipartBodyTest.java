@@ -0,0 +1,147 @@
+package fr.opensagres.maven.plugins;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the multipart request body of uploads.
+ */
+public class MultipartBodyTest extends TestCase {
+
+	public void testBody() throws Exception {
+		File file = new File("src/test/resources/temp.txt");
+		MultipartBody body = new MultipartBody(file, "a summary",
+				new String[] { "Featured", " Type-Source" });
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long fileBytes = body.writeTo(out);
+
+		assertEquals(file.length(), fileBytes);
+		assertEquals(body.getContentLength(), out.size());
+		String expected = "--CowMooCowMooCowCowCow\r\n"
+				+ "content-disposition: form-data; name=\"summary\"\r\n\r\n"
+				+ "a summary\r\n"
+				+ "--CowMooCowMooCowCowCow\r\n"
+				+ "content-disposition: form-data; name=\"label\"\r\n\r\n"
+				+ "Featured\r\n"
+				+ "--CowMooCowMooCowCowCow\r\n"
+				+ "content-disposition: form-data; name=\"label\"\r\n\r\n"
+				+ "Type-Source\r\n"
+				+ "--CowMooCowMooCowCowCow\r\n"
+				+ "content-disposition: form-data; name=\"filename\"; filename=\"temp.txt\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n";
+		assertTrue(out.toString("ascii").startsWith(expected));
+		assertTrue(out.toString("ascii").endsWith(
+				"\r\n--CowMooCowMooCowCowCow--\r\n"));
+	}
+
+	/**
+	 * Writing the body of a 4 MB file must not allocate in proportion to the
+	 * file size once the buffer pool is warm.
+	 */
+	public void testWriteDoesNotAllocatePerChunk() throws Exception {
+		com.sun.management.ThreadMXBean threads = allocationCounter();
+		if (threads == null)
+			return;
+		MultipartBody body = largeBody();
+		OutputStream sink = discard();
+		for (int i = 0; i < 5; i++) {
+			body.writeTo(sink);
+		}
+
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		body.writeTo(sink);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		assertTrue("allocated " + allocated + " bytes",
+				allocated < BufferPool.BUFFER_SIZE / 4);
+	}
+
+	/**
+	 * Same as above when the body is copied to several destinations: the
+	 * file is read straight into recycled fan-out chunks.
+	 */
+	public void testFanOutWriteDoesNotAllocatePerChunk() throws Exception {
+		com.sun.management.ThreadMXBean threads = allocationCounter();
+		if (threads == null)
+			return;
+		MultipartBody body = largeBody();
+		FanOutStream out = new FanOutStream(Arrays.asList(discard(), discard()),
+				Arrays.asList("first", "second"), 4, new BufferPool(
+						BufferPool.BUFFER_SIZE, 8));
+		try {
+			for (int i = 0; i < 5; i++) {
+				body.writeTo(out);
+			}
+
+			long thread = Thread.currentThread().getId();
+			long before = threads.getThreadAllocatedBytes(thread);
+			body.writeTo(out);
+			long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+			// a new holder per chunk would take over 2 KB for the 64 chunks
+			assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static com.sun.management.ThreadMXBean allocationCounter() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()
+				|| !threads.isThreadAllocatedMemoryEnabled())
+			return null;
+		return threads;
+	}
+
+	/**
+	 * Returns the body of a 4 MB file.
+	 */
+	private static MultipartBody largeBody() throws IOException {
+		File file = File.createTempFile("gcupload", ".bin");
+		file.deleteOnExit();
+		OutputStream content = new FileOutputStream(file);
+		content.write(new byte[4 * 1024 * 1024]);
+		content.close();
+		return new MultipartBody(file, "summary", new String[] { "Featured" });
+	}
+
+	private static OutputStream discard() {
+		return new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+	}
+}
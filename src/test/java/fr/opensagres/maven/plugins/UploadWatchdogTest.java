@@ -0,0 +1,235 @@
+package fr.opensagres.maven.plugins;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+/**
+ * Test the stall detection of uploads.
+ */
+public class UploadWatchdogTest extends TestCase {
+
+	public void testDeadlineScalesWithSize() {
+		assertEquals(0, UploadWatchdog.deadline(0, 1024, 4096));
+		assertEquals(1000, UploadWatchdog.deadline(1000, 0, 4096));
+		assertEquals(5000, UploadWatchdog.deadline(1000, 1024, 4096));
+	}
+
+	public void testDeadlineExceeded() throws Exception {
+		UploadWatchdog watchdog = new UploadWatchdog(5000, 0, 1000);
+		watchdog.start(null, 0);
+		try {
+			assertNull(watchdog.check(5000));
+			assertNotNull(watchdog.check(5001));
+		} finally {
+			watchdog.stop();
+		}
+	}
+
+	public void testDeadlineExcludesWaitsBetweenWrites() throws Exception {
+		ClockedWatchdog watchdog = new ClockedWatchdog(5000, 0, 1000);
+		OutputStream out = watchdog.watch(watchdog.slowStream(1000));
+		for (int i = 0; i < 4; i++) {
+			out.write(new byte[10]);
+			// waiting for a slower destination to take the next bytes
+			watchdog.time += 10000;
+			assertNull(watchdog.check(watchdog.time));
+		}
+		out.close();
+		// waiting for the response counts again
+		watchdog.time += 1000;
+		assertNull(watchdog.check(watchdog.time));
+		watchdog.time += 1;
+		assertNotNull(watchdog.check(watchdog.time));
+	}
+
+	public void testThroughputFloor() throws Exception {
+		ClockedWatchdog watchdog = new ClockedWatchdog(100, 3000);
+		OutputStream out = watchdog.watch(watchdog.slowStream(1000));
+		for (int i = 0; i < 10; i++) {
+			out.write(new byte[150]);
+			assertNull(watchdog.check(watchdog.time));
+		}
+		// 150 bytes per second spent writing so far, now 50
+		out.write(new byte[50]);
+		assertNull(watchdog.check(watchdog.time));
+		out.write(new byte[50]);
+		assertNotNull(watchdog.check(watchdog.time));
+		try {
+			out.write(1);
+			fail("write on a stalled upload");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	public void testBlockedWriteIsStalled() throws Exception {
+		final ClockedWatchdog watchdog = new ClockedWatchdog(100, 3000);
+		final String[] reasons = new String[4];
+		OutputStream blocked = new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+				for (int i = 0; i < reasons.length; i++) {
+					watchdog.time += 1000;
+					reasons[i] = watchdog.check(watchdog.time);
+				}
+			}
+		};
+		watchdog.watch(blocked).write(new byte[10]);
+		assertNull(reasons[2]);
+		assertNotNull(reasons[3]);
+	}
+
+	public void testWaitingBetweenWritesIsNotStalled() throws Exception {
+		ClockedWatchdog watchdog = new ClockedWatchdog(100, 3000);
+		OutputStream out = watchdog.watch(watchdog.slowStream(10));
+		// nothing written yet, for example while other destinations connect
+		for (long now = 1000; now <= 10000; now += 1000) {
+			assertNull(watchdog.check(now));
+		}
+		for (int i = 0; i < 10; i++) {
+			out.write(new byte[150]);
+			// waiting for the next bytes to send
+			watchdog.time += 5000;
+			assertNull(watchdog.check(watchdog.time));
+		}
+	}
+
+	public void testNoThroughputFloorOnceClosed() throws Exception {
+		ClockedWatchdog watchdog = new ClockedWatchdog(100, 3000);
+		OutputStream out = watchdog.watch(watchdog.slowStream(1000));
+		out.write(new byte[150]);
+		out.close();
+		for (int i = 0; i < 10; i++) {
+			watchdog.time += 1000;
+			assertNull(watchdog.check(watchdog.time));
+		}
+	}
+
+	public void testNoThroughputFloorWaitingForResponse() throws Exception {
+		UploadWatchdog watchdog = new UploadWatchdog(0, 100, 3000);
+		watchdog.start(null, 0);
+		try {
+			watchdog.watch(new ByteArrayOutputStream()).write(new byte[10]);
+			watchdog.bodySent();
+			for (long now = 1000; now <= 10000; now += 1000) {
+				assertNull(watchdog.check(now));
+			}
+		} finally {
+			watchdog.stop();
+		}
+	}
+
+	public void testFailingAbortDoesNotStopOtherWatchdogs() throws Exception {
+		UploadWatchdog failing = new UploadWatchdog(1, 0, 1000);
+		failing.start(new Connection(true));
+		Connection connection = new Connection(false);
+		UploadWatchdog watchdog = new UploadWatchdog(1, 0, 1000);
+		try {
+			long end = System.currentTimeMillis() + 5000;
+			while (failing.getStallReason() == null
+					&& System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			assertNotNull(failing.getStallReason());
+
+			watchdog.start(connection);
+			while (!connection.disconnected && System.currentTimeMillis() < end) {
+				Thread.sleep(10);
+			}
+			assertTrue(connection.disconnected);
+		} finally {
+			failing.stop();
+			watchdog.stop();
+		}
+	}
+
+	/**
+	 * A connection recording whether it has been disconnected.
+	 */
+	private static class Connection extends HttpURLConnection {
+
+		private final boolean failing;
+
+		volatile boolean disconnected;
+
+		Connection(boolean failing) throws IOException {
+			super(new URL("http://localhost/files"));
+			this.failing = failing;
+		}
+
+		public void connect() {
+		}
+
+		public boolean usingProxy() {
+			return false;
+		}
+
+		public void disconnect() {
+			if (failing)
+				throw new IllegalStateException("disconnect failed");
+			disconnected = true;
+		}
+	}
+
+	/**
+	 * A watchdog with a clock driven by the test.
+	 */
+	private static class ClockedWatchdog extends UploadWatchdog {
+
+		long time;
+
+		ClockedWatchdog(long minThroughput, long window) {
+			this(0, minThroughput, window);
+		}
+
+		ClockedWatchdog(long deadline, long minThroughput, long window) {
+			super(deadline, minThroughput, window);
+			start(null, 0);
+		}
+
+		long clock() {
+			return time;
+		}
+
+		/**
+		 * Returns a stream each write to which takes the given time.
+		 */
+		OutputStream slowStream(final long writeTime) {
+			return new OutputStream() {
+				public void write(int b) {
+					time += writeTime;
+				}
+
+				public void write(byte[] b, int off, int len) {
+					time += writeTime;
+				}
+			};
+		}
+	}
+}